@@ -1,13 +1,21 @@
 package io.github.stduritemplate;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.net.URI;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.zip.CRC32;
 
 public class StdUriTemplate {
 
@@ -16,6 +24,21 @@ public class StdUriTemplate {
         return expandImpl(template, substitutions);
     }
 
+    // Parses and validates the template once, the result can be expanded many times
+    public static Compiled compile(final String template) {
+        return compileImpl(template);
+    }
+
+    // Same as expand, the result is split in its URI components without parsing it again
+    public static Components expandComponents(final String template, final Map<String, Object> substitutions) {
+        return compileImpl(template).expandComponents(substitutions);
+    }
+
+    // Reads a template serialized with Compiled.toByteArray, starting at the buffer position
+    public static Compiled load(final ByteBuffer buffer) {
+        return loadImpl(buffer);
+    }
+
     // Private implementation
     private enum Operator {
         NO_OP,
@@ -191,19 +214,7 @@ public class StdUriTemplate {
                             }
                         }
                     } else {
-                        if (character > 0x7F || Character.isHighSurrogate(character)) {
-                            String toEncode;
-                            if (Character.isHighSurrogate(character) && i + 1 < str.length() && Character.isLowSurrogate(str.charAt(i + 1))) {
-                                toEncode = new String(new char[]{character, str.charAt(++i)});
-                            } else {
-                                toEncode = Character.toString(character);
-                            }
-                            for (byte b : toEncode.getBytes(StandardCharsets.UTF_8)) {
-                                result.append(String.format("%%%02X", b & 0xFF));
-                            }
-                        } else {
-                            result.append(character);
-                        }
+                        i = appendLiteral(str, i, result);
                     }
                     break;
             }
@@ -216,6 +227,25 @@ public class StdUriTemplate {
         }
     }
 
+    // returns the index of the last character consumed
+    private static int appendLiteral(String str, int i, StringBuilder result) {
+        char character = str.charAt(i);
+        if (character > 0x7F || Character.isHighSurrogate(character)) {
+            String toEncode;
+            if (Character.isHighSurrogate(character) && i + 1 < str.length() && Character.isLowSurrogate(str.charAt(i + 1))) {
+                toEncode = new String(new char[]{character, str.charAt(++i)});
+            } else {
+                toEncode = Character.toString(character);
+            }
+            for (byte b : toEncode.getBytes(StandardCharsets.UTF_8)) {
+                result.append(String.format("%%%02X", b & 0xFF));
+            }
+        } else {
+            result.append(character);
+        }
+        return i;
+    }
+
     private static void addPrefix(Operator op, StringBuilder result) {
         switch (op) {
             case HASH:
@@ -473,6 +503,19 @@ public class StdUriTemplate {
 
         checkVarname(token, col);
 
+        return expandVarspec(operator, token, composite, maxChar, firstToken, substitutions, result, col);
+    }
+
+    // same as expandToken, for tokens already validated at compile time
+    private static boolean expandVarspec(
+            Operator operator,
+            String token,
+            boolean composite,
+            int maxChar,
+            boolean firstToken,
+            Map<String, Object> substitutions,
+            StringBuilder result,
+            int col) {
         Object value = substitutions.get(token);
         SubstitutionType substType = getSubstitutionType(value, col);
         if (substType == SubstitutionType.EMPTY || isEmpty(substType, value)) {
@@ -551,4 +594,609 @@ public class StdUriTemplate {
         return !first;
     }
 
+    // Compiled templates
+    public static final class Compiled {
+        private final String template;
+        private final Segment[] segments;
+
+        private Compiled(String template, Segment[] segments) {
+            this.template = template;
+            this.segments = segments;
+        }
+
+        public String getTemplate() {
+            return template;
+        }
+
+        public String expand(final Map<String, Object> substitutions) {
+            final StringBuilder result = new StringBuilder(template.length() * 2);
+            for (Segment segment : segments) {
+                expandSegment(segment, substitutions, result);
+            }
+            return result.toString();
+        }
+
+        // Same as expand, recording where the URI components start in the result
+        public Components expandComponents(final Map<String, Object> substitutions) {
+            final StringBuilder result = new StringBuilder(template.length() * 2);
+            int queryStart = -1;
+            int fragmentStart = -1;
+            for (Segment segment : segments) {
+                final int start = result.length();
+                expandSegment(segment, substitutions, result);
+                if (fragmentStart == -1 && result.length() > start) {
+                    int query = -1;
+                    int fragment = -1;
+                    if (segment.operator == null) {
+                        query = segment.literalQuery;
+                        fragment = segment.literalFragment;
+                    } else {
+                        switch (segment.operator) {
+                            case QUESTION_MARK:
+                                query = 0;
+                                break;
+                            case HASH:
+                                fragment = 0;
+                                break;
+                            case PLUS:
+                                // the only operator leaving reserved characters unencoded after its prefix
+                                query = (queryStart == -1) ? indexOf(result, '?', start) - start : -1;
+                                fragment = indexOf(result, '#', start) - start;
+                                break;
+                            default:
+                                break;
+                        }
+                    }
+                    if (queryStart == -1 && query >= 0 && (fragment < 0 || query < fragment)) {
+                        queryStart = start + query;
+                    }
+                    if (fragment >= 0) {
+                        fragmentStart = start + fragment;
+                    }
+                }
+            }
+            return new Components(result.toString(), queryStart, fragmentStart);
+        }
+
+        public Expander expander(final Map<String, Object> substitutions) {
+            return new Expander(segments, substitutions);
+        }
+
+        public byte[] toByteArray() {
+            return serialize(this);
+        }
+    }
+
+    // Keeps the expanded output of every segment, so that an update re-expands only the expressions
+    // referencing the changed variables. Values are not copied: a List or Map changed in place
+    // has to be passed again to update. Not thread safe.
+    public static final class Expander {
+        private final Segment[] segments;
+        private final String[] parts;
+        private final Map<String, List<Integer>> dependents = new HashMap<>();
+        private final Map<String, Object> substitutions;
+        private int length;
+
+        private Expander(Segment[] segments, Map<String, Object> substitutions) {
+            this.segments = segments;
+            this.parts = new String[segments.length];
+            this.substitutions = new HashMap<>(substitutions);
+
+            for (int i = 0; i < segments.length; i++) {
+                if (segments[i].operator != null) {
+                    for (Varspec varspec : segments[i].varspecs) {
+                        List<Integer> indexes = dependents.get(varspec.name);
+                        if (indexes == null) {
+                            indexes = new ArrayList<>(1);
+                            dependents.put(varspec.name, indexes);
+                        }
+                        if (!indexes.contains(i)) {
+                            indexes.add(i);
+                        }
+                    }
+                }
+                parts[i] = expandPart(segments[i], this.substitutions);
+                length += parts[i].length();
+            }
+        }
+
+        // changes with a null value remove the variable, returns the new expansion
+        public String update(final Map<String, Object> changes) {
+            final Map<String, Object> previous = new HashMap<>();
+            final List<Integer> indexes = new ArrayList<>();
+            final List<String> updated = new ArrayList<>();
+            try {
+                for (Map.Entry<String, Object> change : changes.entrySet()) {
+                    previous.put(change.getKey(), substitutions.put(change.getKey(), change.getValue()));
+                    List<Integer> changed = dependents.get(change.getKey());
+                    if (changed != null) {
+                        for (Integer index : changed) {
+                            if (!indexes.contains(index)) {
+                                indexes.add(index);
+                            }
+                        }
+                    }
+                }
+                for (Integer index : indexes) {
+                    updated.add(expandPart(segments[index], substitutions));
+                }
+            } catch (RuntimeException e) {
+                // leave the state untouched when the new values cannot be expanded
+                substitutions.putAll(previous);
+                throw e;
+            }
+
+            for (int i = 0; i < indexes.size(); i++) {
+                int index = indexes.get(i);
+                length += updated.get(i).length() - parts[index].length();
+                parts[index] = updated.get(i);
+            }
+            return toString();
+        }
+
+        public String update(final String name, final Object value) {
+            return update(Collections.singletonMap(name, value));
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder result = new StringBuilder(length);
+            for (String part : parts) {
+                result.append(part);
+            }
+            return result.toString();
+        }
+    }
+
+    private static String expandPart(Segment segment, Map<String, Object> substitutions) {
+        if (segment.operator == null) {
+            return segment.literal;
+        }
+        final StringBuilder result = new StringBuilder();
+        expandSegment(segment, substitutions, result);
+        return result.toString();
+    }
+
+    // An expanded template split in its URI components, offsets are computed during the expansion
+    // so that only the scheme and authority, at the beginning of the result, have to be scanned
+    public static final class Components {
+        private final String uri;
+        private final int schemeEnd;
+        private final int authorityStart;
+        private final int pathStart;
+        private final int queryStart;
+        private final int fragmentStart;
+
+        private Components(String uri, int queryStart, int fragmentStart) {
+            this.uri = uri;
+            this.queryStart = queryStart;
+            this.fragmentStart = fragmentStart;
+
+            final int hierEnd = (queryStart != -1) ? queryStart : (fragmentStart != -1) ? fragmentStart : uri.length();
+            int schemeEnd = -1;
+            if (hierEnd > 0 && isAlpha(uri.charAt(0))) {
+                for (int i = 1; i < hierEnd; i++) {
+                    char c = uri.charAt(i);
+                    if (c == ':') {
+                        schemeEnd = i;
+                        break;
+                    } else if (!isAlpha(c) && !(c >= '0' && c <= '9') && c != '+' && c != '-' && c != '.') {
+                        break;
+                    }
+                }
+            }
+            this.schemeEnd = schemeEnd;
+
+            final int hierStart = schemeEnd + 1;
+            if (uri.startsWith("//", hierStart) && hierStart + 2 <= hierEnd) {
+                authorityStart = hierStart + 2;
+                int pathStart = uri.indexOf('/', authorityStart);
+                this.pathStart = (pathStart == -1 || pathStart > hierEnd) ? hierEnd : pathStart;
+            } else {
+                authorityStart = -1;
+                pathStart = hierStart;
+            }
+        }
+
+        // null when the result is a relative reference
+        public String getScheme() {
+            return (schemeEnd == -1) ? null : uri.substring(0, schemeEnd);
+        }
+
+        public String getRawAuthority() {
+            return (authorityStart == -1) ? null : uri.substring(authorityStart, pathStart);
+        }
+
+        public String getRawPath() {
+            return uri.substring(pathStart, (queryStart != -1) ? queryStart : (fragmentStart != -1) ? fragmentStart : uri.length());
+        }
+
+        // without the leading '?', null when there is no query
+        public String getRawQuery() {
+            return (queryStart == -1) ? null : uri.substring(queryStart + 1, (fragmentStart != -1) ? fragmentStart : uri.length());
+        }
+
+        // without the leading '#', null when there is no fragment
+        public String getRawFragment() {
+            return (fragmentStart == -1) ? null : uri.substring(fragmentStart + 1);
+        }
+
+        // java.net.URI has no constructor accepting already encoded components, it always parses the string
+        public URI toURI() {
+            return URI.create(uri);
+        }
+
+        @Override
+        public String toString() {
+            return uri;
+        }
+    }
+
+    private static boolean isAlpha(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    private static int indexOf(StringBuilder result, char c, int from) {
+        for (int i = from; i < result.length(); i++) {
+            if (result.charAt(i) == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // either a pre-encoded literal or an expression, when operator is not null
+    private static final class Segment {
+        final String literal;
+        final Operator operator;
+        final Varspec[] varspecs;
+        // positions of the query and fragment delimiters in the literal, -1 when missing
+        final int literalQuery;
+        final int literalFragment;
+
+        Segment(String literal, Operator operator, Varspec[] varspecs) {
+            this.literal = literal;
+            this.operator = operator;
+            this.varspecs = varspecs;
+            this.literalQuery = (literal == null) ? -1 : literal.indexOf('?');
+            this.literalFragment = (literal == null) ? -1 : literal.indexOf('#');
+        }
+    }
+
+    private static final class Varspec {
+        final String name;
+        final boolean composite;
+        final int maxChar;
+        final int col;
+
+        Varspec(String name, boolean composite, int maxChar, int col) {
+            this.name = name;
+            this.composite = composite;
+            this.maxChar = maxChar;
+            this.col = col;
+        }
+    }
+
+    private static void expandSegment(Segment segment, Map<String, Object> substitutions, StringBuilder result) {
+        if (segment.operator == null) {
+            result.append(segment.literal);
+            return;
+        }
+        boolean firstToken = true;
+        for (Varspec varspec : segment.varspecs) {
+            boolean expanded = expandVarspec(segment.operator, varspec.name, varspec.composite, varspec.maxChar, firstToken, substitutions, result, varspec.col);
+            if (expanded && firstToken) {
+                firstToken = false;
+            }
+        }
+    }
+
+    private static Segment literalSegment(StringBuilder literal) {
+        return new Segment(literal.toString(), null, null);
+    }
+
+    private static Segment expressionSegment(Operator operator, List<Varspec> varspecs) {
+        return new Segment(null, operator, varspecs.toArray(new Varspec[0]));
+    }
+
+    private static Varspec compileVarspec(String token, boolean composite, int maxChar, int col, Map<String, String> names) {
+        if (token.isEmpty()) {
+            throw new IllegalArgumentException("Found an empty token at col:" + col);
+        }
+
+        checkVarname(token, col);
+
+        String name = names.get(token);
+        if (name == null) {
+            name = token;
+            names.put(name, name);
+        }
+        return new Varspec(name, composite, maxChar, col);
+    }
+
+    // Mirrors the state machine in expandImpl, recording segments instead of expanding them
+    private static Compiled compileImpl(String str) {
+        final List<Segment> segments = new ArrayList<>();
+        final Map<String, String> names = new HashMap<>();
+        final StringBuilder literal = new StringBuilder(str.length());
+        final List<Varspec> varspecs = new ArrayList<>();
+
+        boolean toToken = false;
+        final StringBuilder token = new StringBuilder();
+
+        Operator operator = null;
+        boolean composite = false;
+        boolean toMaxCharBuffer = false;
+        final StringBuilder maxCharBuffer = new StringBuilder(3);
+
+        for (int i = 0; i < str.length(); i++) {
+            char character = str.charAt(i);
+            switch (character) {
+                case '{':
+                    if (literal.length() > 0) {
+                        segments.add(literalSegment(literal));
+                        literal.setLength(0);
+                    }
+                    // a '{' inside a token restarts the expression keeping the operator, as in expandImpl
+                    if (!varspecs.isEmpty()) {
+                        segments.add(expressionSegment(operator, varspecs));
+                        varspecs.clear();
+                    }
+                    toToken = true;
+                    token.setLength(0);
+                    break;
+                case '}':
+                    if (toToken) {
+                        if (toMaxCharBuffer && maxCharBuffer.length() == 0) {
+                            throw new IllegalArgumentException("Empty prefix modifier at col:" + i);
+                        }
+                        varspecs.add(compileVarspec(token.toString(), composite, getMaxChar(maxCharBuffer, i), i, names));
+                        segments.add(expressionSegment(operator, varspecs));
+                        varspecs.clear();
+                        toToken = false;
+                        token.setLength(0);
+                        operator = null;
+                        composite = false;
+                        toMaxCharBuffer = false;
+                        maxCharBuffer.setLength(0);
+                    } else {
+                        throw new IllegalArgumentException("Failed to expand token, invalid at col:" + i);
+                    }
+                    break;
+                case ',':
+                    if (toToken) {
+                        if (toMaxCharBuffer && maxCharBuffer.length() == 0) {
+                            throw new IllegalArgumentException("Empty prefix modifier at col:" + i);
+                        }
+                        varspecs.add(compileVarspec(token.toString(), composite, getMaxChar(maxCharBuffer, i), i, names));
+                        token.setLength(0);
+                        composite = false;
+                        toMaxCharBuffer = false;
+                        maxCharBuffer.setLength(0);
+                        break;
+                    }
+                    // Intentional fall-through for commas outside the {}
+                default:
+                    if (toToken) {
+                        if (operator == null) {
+                            operator = getOperator(character, token, i);
+                        } else if (toMaxCharBuffer) {
+                            if (Character.isDigit(character)) {
+                                maxCharBuffer.append(character);
+                            } else {
+                                throw new IllegalArgumentException("Illegal character identified in the token at col:" + i);
+                            }
+                        } else {
+                            if (character == ':') {
+                                toMaxCharBuffer = true;
+                                maxCharBuffer.setLength(0);
+                            } else if (character == '*') {
+                                composite = true;
+                            } else {
+                                validateLiteral(character, i);
+                                token.append(character);
+                            }
+                        }
+                    } else {
+                        i = appendLiteral(str, i, literal);
+                    }
+                    break;
+            }
+        }
+
+        if (toToken) {
+            throw new IllegalArgumentException("Unterminated token");
+        }
+        if (literal.length() > 0) {
+            segments.add(literalSegment(literal));
+        }
+        return new Compiled(str, segments.toArray(new Segment[0]));
+    }
+
+    // Binary format, all integers are big endian:
+    //   magic        4 bytes "SUTC"
+    //   version      short
+    //   length       int, of the whole record including the checksum
+    //   template     string, kept to re-parse when the version doesn't match
+    //   body         version specific, see writeBody
+    //   checksum     int, CRC32 of all of the preceding bytes of the record
+    // strings are an int length followed by the UTF-8 bytes.
+    private static final int FORMAT_MAGIC = 0x53555443;
+    private static final short FORMAT_VERSION = 1;
+    private static final int FORMAT_HEADER_SIZE = 10;
+
+    private static final Operator[] OPERATORS = Operator.values();
+
+    private static char operatorChar(Operator op) {
+        switch (op) {
+            case PLUS: return '+';
+            case HASH: return '#';
+            case DOT: return '.';
+            case SLASH: return '/';
+            case SEMICOLON: return ';';
+            case QUESTION_MARK: return '?';
+            case AMP: return '&';
+            default: return 0;
+        }
+    }
+
+    private static Operator operatorFromChar(char c) {
+        for (Operator op : OPERATORS) {
+            if (operatorChar(op) == c) {
+                return op;
+            }
+        }
+        throw new IllegalArgumentException("Unknown operator in compiled template: " + c);
+    }
+
+    private static byte[] serialize(Compiled compiled) {
+        try {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream(compiled.template.length() * 4);
+            final DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(FORMAT_MAGIC);
+            out.writeShort(FORMAT_VERSION);
+            out.writeInt(0); // length, patched below
+            writeString(out, compiled.template);
+            writeBody(out, compiled.segments);
+            out.flush();
+
+            final byte[] record = bytes.toByteArray();
+            final ByteBuffer result = ByteBuffer.allocate(record.length + 4);
+            result.put(record);
+            result.putInt(6, result.capacity());
+            final CRC32 crc = new CRC32();
+            crc.update(result.array(), 0, record.length);
+            result.putInt((int) crc.getValue());
+            return result.array();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // Body, version 1:
+    //   names        int count, then the strings, every variable name appears once
+    //   operators    byte count, then the operator chars, 0 for the plain expression
+    //   segments     int count, then for each:
+    //                  byte 0, string: a pre-encoded literal
+    //                  byte 1, byte operator index, int count, then for each varspec:
+    //                    int name index, boolean composite, short max chars, int col
+    private static void writeBody(DataOutputStream out, Segment[] segments) throws IOException {
+        final Map<String, Integer> names = new HashMap<>();
+        final List<String> nameTable = new ArrayList<>();
+        for (Segment segment : segments) {
+            if (segment.operator != null) {
+                for (Varspec varspec : segment.varspecs) {
+                    if (!names.containsKey(varspec.name)) {
+                        names.put(varspec.name, nameTable.size());
+                        nameTable.add(varspec.name);
+                    }
+                }
+            }
+        }
+
+        out.writeInt(nameTable.size());
+        for (String name : nameTable) {
+            writeString(out, name);
+        }
+
+        out.writeByte(OPERATORS.length);
+        for (Operator op : OPERATORS) {
+            out.writeByte(operatorChar(op));
+        }
+
+        out.writeInt(segments.length);
+        for (Segment segment : segments) {
+            if (segment.operator == null) {
+                out.writeByte(0);
+                writeString(out, segment.literal);
+            } else {
+                out.writeByte(1);
+                out.writeByte(segment.operator.ordinal());
+                out.writeInt(segment.varspecs.length);
+                for (Varspec varspec : segment.varspecs) {
+                    out.writeInt(names.get(varspec.name));
+                    out.writeBoolean(varspec.composite);
+                    out.writeShort(varspec.maxChar);
+                    out.writeInt(varspec.col);
+                }
+            }
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String str) throws IOException {
+        final byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static Compiled loadImpl(ByteBuffer buffer) {
+        final ByteBuffer in = buffer.slice().order(ByteOrder.BIG_ENDIAN);
+        if (in.remaining() < FORMAT_HEADER_SIZE + 4 || in.getInt() != FORMAT_MAGIC) {
+            throw new IllegalArgumentException("Not a compiled template");
+        }
+        final short version = in.getShort();
+        final int length = in.getInt();
+        if (length < FORMAT_HEADER_SIZE + 4 || length > in.capacity()) {
+            throw new IllegalArgumentException("Truncated compiled template");
+        }
+
+        final ByteBuffer checked = in.duplicate();
+        checked.position(0);
+        checked.limit(length - 4);
+        final CRC32 crc = new CRC32();
+        crc.update(checked);
+        if ((int) crc.getValue() != in.getInt(length - 4)) {
+            throw new IllegalArgumentException("Compiled template checksum mismatch");
+        }
+        in.limit(length - 4);
+
+        final String template = readString(in);
+        final Compiled result;
+        if (version == FORMAT_VERSION) {
+            result = new Compiled(template, readBody(in));
+        } else {
+            // written by a different version of the library, fall back to parsing the template again
+            result = compileImpl(template);
+        }
+        buffer.position(buffer.position() + length);
+        return result;
+    }
+
+    private static Segment[] readBody(ByteBuffer in) {
+        final String[] names = new String[in.getInt()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = readString(in);
+        }
+
+        final Operator[] operators = new Operator[in.get()];
+        for (int i = 0; i < operators.length; i++) {
+            operators[i] = operatorFromChar((char) in.get());
+        }
+
+        final Segment[] segments = new Segment[in.getInt()];
+        for (int i = 0; i < segments.length; i++) {
+            if (in.get() == 0) {
+                segments[i] = new Segment(readString(in), null, null);
+            } else {
+                final Operator operator = operators[in.get()];
+                final Varspec[] varspecs = new Varspec[in.getInt()];
+                for (int j = 0; j < varspecs.length; j++) {
+                    String name = names[in.getInt()];
+                    boolean composite = in.get() != 0;
+                    int maxChar = in.getShort();
+                    int col = in.getInt();
+                    varspecs[j] = new Varspec(name, composite, maxChar, col);
+                }
+                segments[i] = new Segment(null, operator, varspecs);
+            }
+        }
+        return segments;
+    }
+
+    private static String readString(ByteBuffer in) {
+        final byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
 }
@@ -1,7 +1,10 @@
 import org.junit.jupiter.api.Test;
 import io.github.stduritemplate.StdUriTemplate;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
 
 // Those tests are available just as a convenience to use with the debug mode in the IDE
 public class StdUriTemplateTest {
@@ -112,4 +115,96 @@ public class StdUriTemplateTest {
         assert("?id=admin&token=12345&key1=val1&key2=val2".equals(result));
     }
 
+    @Test
+    void compiledRoundTrip() {
+        HashMap<String, Object> substs = new HashMap();
+        substs.put("id", "admin");
+        substs.put("token", "12345");
+        StdUriTemplate.Compiled compiled = StdUriTemplate.compile("/user{/id}{?token,id}");
+        byte[] first = compiled.toByteArray();
+        byte[] second = StdUriTemplate.compile("h\u00E9{id}").toByteArray();
+        ByteBuffer buffer = ByteBuffer.allocate(first.length + second.length);
+        buffer.put(first).put(second);
+        buffer.flip();
+        String result = StdUriTemplate.load(buffer).expand(substs);
+        System.out.println(result);
+        assert("/user/admin?token=12345&id=admin".equals(result));
+        result = StdUriTemplate.load(buffer).expand(substs);
+        System.out.println(result);
+        assert("h%C3%A9admin".equals(result));
+        assert(!buffer.hasRemaining());
+    }
+
+    @Test
+    void compiledVersionMismatch() {
+        HashMap<String, Object> substs = new HashMap();
+        substs.put("var", "value");
+        byte[] bytes = StdUriTemplate.compile("{/var:1,var}").toByteArray();
+        bytes[5] = 99; // unknown format version, the checksum has to be recomputed
+        java.util.zip.CRC32 crc = new java.util.zip.CRC32();
+        crc.update(bytes, 0, bytes.length - 4);
+        ByteBuffer.wrap(bytes).putInt(bytes.length - 4, (int) crc.getValue());
+        String result = StdUriTemplate.load(ByteBuffer.wrap(bytes)).expand(substs);
+        System.out.println(result);
+        assert("/v/value".equals(result));
+    }
+
+    @Test
+    void compiledChecksumMismatch() {
+        byte[] bytes = StdUriTemplate.compile("{var}").toByteArray();
+        bytes[bytes.length - 5] ^= 1;
+        try {
+            StdUriTemplate.load(ByteBuffer.wrap(bytes));
+            assert(false);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+        }
+    }
+
+    @Test
+    void components() {
+        HashMap<String, Object> substs = new HashMap();
+        substs.put("base", "https://example.com:8080/home?a=b");
+        substs.put("id", "admin");
+        substs.put("var", "value");
+        StdUriTemplate.Components result = StdUriTemplate.expandComponents("{+base}{&id}{#var}", substs);
+        System.out.println(result);
+        assert("https://example.com:8080/home?a=b&id=admin#value".equals(result.toString()));
+        assert("https".equals(result.getScheme()));
+        assert("example.com:8080".equals(result.getRawAuthority()));
+        assert("/home".equals(result.getRawPath()));
+        assert("a=b&id=admin".equals(result.getRawQuery()));
+        assert("value".equals(result.getRawFragment()));
+        assert(result.toURI().getPort() == 8080);
+    }
+
+    @Test
+    void incrementalExpansion() {
+        int[] iterations = new int[1];
+        ArrayList<Object> filters = new ArrayList<Object>() {
+            @Override
+            public Iterator<Object> iterator() {
+                iterations[0]++;
+                return super.iterator();
+            }
+        };
+        filters.add("red");
+        filters.add("blue");
+        HashMap<String, Object> substs = new HashMap();
+        substs.put("filters", filters);
+        substs.put("page", 1);
+        StdUriTemplate.Expander expander = StdUriTemplate.compile("/items{?filters*}{&page,cursor}").expander(substs);
+        assert("/items?filters=red&filters=blue&page=1".equals(expander.toString()));
+        String result = expander.update("page", 2);
+        System.out.println(result);
+        assert("/items?filters=red&filters=blue&page=2".equals(result));
+        HashMap<String, Object> changes = new HashMap();
+        changes.put("page", null);
+        changes.put("cursor", "a b");
+        result = expander.update(changes);
+        System.out.println(result);
+        assert("/items?filters=red&filters=blue&cursor=a%20b".equals(result));
+        assert(iterations[0] == 1);
+    }
+
 }